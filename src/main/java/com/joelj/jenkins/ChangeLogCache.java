@@ -0,0 +1,200 @@
+package com.joelj.jenkins;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the output of `git whatchanged` on the controller so jobs triggered by the same hook
+ * (same repository and same OLDREV/NEWREV pair) don't each regenerate and transfer the same changelog.
+ *
+ * Entries are keyed by resolved SHAs, never by symbolic names like HEAD, so a hit is always the same content.
+ * The least recently used entries are evicted once the total size of the cached changelogs is over the limit.
+ *
+ * Jobs fired by the same hook usually check out at the same moment, so a changelog that is being generated
+ * is shared too: concurrent callers with the same key wait for the first one instead of running git themselves.
+ */
+public class ChangeLogCache {
+	public static final int DEFAULT_MAX_SIZE_MB = 16;
+
+	private static final ChangeLogCache instance = new ChangeLogCache();
+
+	private final LinkedHashMap<Key, String> cache = new LinkedHashMap<Key, String>(16, 0.75f, true);
+	private final Map<Key, FutureTask<String>> pending = new HashMap<Key, FutureTask<String>>();
+	private long maxSizeChars;
+	private long currentSizeChars = 0;
+
+	ChangeLogCache(long maxSizeChars) {
+		this.maxSizeChars = maxSizeChars;
+	}
+
+	private ChangeLogCache() {
+		this(toChars(DEFAULT_MAX_SIZE_MB));
+	}
+
+	public static ChangeLogCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return Null if the changelog isn't cached.
+	 */
+	public synchronized String get(Key key) {
+		return cache.get(key);
+	}
+
+	/**
+	 * Returns the cached changelog, or generates it. If another thread is already generating the changelog for the same key,
+	 * this waits for that result rather than generating it again.
+	 * If that other generation fails, this tries again with the given generator, so one aborted build doesn't fail the others.
+	 */
+	public String get(Key key, final Generator generator) throws IOException, InterruptedException {
+		while(true) {
+			FutureTask<String> task;
+			boolean owner = false;
+			synchronized (this) {
+				String cached = cache.get(key);
+				if(cached != null) {
+					return cached;
+				}
+
+				task = pending.get(key);
+				if(task == null) {
+					task = new FutureTask<String>(new Callable<String>() {
+						public String call() throws Exception {
+							return generator.generate();
+						}
+					});
+					pending.put(key, task);
+					owner = true;
+				}
+			}
+
+			if(owner) {
+				task.run();
+				synchronized (this) {
+					// Removed and cached under the same lock, so no other caller can miss both.
+					pending.remove(key);
+					if(!task.isCancelled()) {
+						try {
+							put(key, task.get());
+						} catch (ExecutionException ignore) {
+							// Reported below
+						}
+					}
+				}
+			}
+
+			try {
+				return task.get();
+			} catch (ExecutionException e) {
+				if(owner) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException) {
+						throw (IOException)cause;
+					}
+					if(cause instanceof InterruptedException) {
+						throw (InterruptedException)cause;
+					}
+					if(cause instanceof RuntimeException) {
+						throw (RuntimeException)cause;
+					}
+					throw new IOException(cause);
+				}
+				// Someone else's generation failed. Loop and try again.
+			}
+		}
+	}
+
+	public synchronized void put(Key key, String changeLog) {
+		String previous = cache.put(key, changeLog);
+		if(previous != null) {
+			currentSizeChars -= previous.length();
+		}
+		currentSizeChars += changeLog.length();
+		evict();
+	}
+
+	/**
+	 * @param maxSizeMb Zero or less disables the cache. Changelogs that are being generated are still shared.
+	 */
+	public synchronized void setMaxSizeMb(int maxSizeMb) {
+		this.maxSizeChars = toChars(maxSizeMb);
+		evict();
+	}
+
+	private static long toChars(int maxSizeMb) {
+		// Java strings are two bytes per char
+		return Math.max(0, maxSizeMb) * 1024L * 1024L / 2;
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+		currentSizeChars = 0;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Key, String>> iterator = cache.entrySet().iterator();
+		while(currentSizeChars > maxSizeChars && iterator.hasNext()) {
+			currentSizeChars -= iterator.next().getValue().length();
+			iterator.remove();
+		}
+	}
+
+	public interface Generator {
+		String generate() throws IOException, InterruptedException;
+	}
+
+	public static class Key {
+		private final String repository;
+		private final String startSha;
+		private final String endSha;
+		private final boolean expandMerges;
+		private final boolean showMergeCommits;
+
+		public Key(String repository, String startSha, String endSha, boolean expandMerges, boolean showMergeCommits) {
+			this.repository = repository;
+			this.startSha = startSha;
+			this.endSha = endSha;
+			this.expandMerges = expandMerges;
+			this.showMergeCommits = showMergeCommits;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			}
+			if(!(o instanceof Key)) {
+				return false;
+			}
+
+			Key key = (Key) o;
+			return expandMerges == key.expandMerges
+					&& showMergeCommits == key.showMergeCommits
+					&& repository.equals(key.repository)
+					&& startSha.equals(key.startSha)
+					&& endSha.equals(key.endSha);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = repository.hashCode();
+			result = 31 * result + startSha.hashCode();
+			result = 31 * result + endSha.hashCode();
+			result = 31 * result + (expandMerges ? 1 : 0);
+			result = 31 * result + (showMergeCommits ? 1 : 0);
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return repository + " " + startSha + ".." + endSha;
+		}
+	}
+}
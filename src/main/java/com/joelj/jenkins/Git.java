@@ -3,12 +3,16 @@ package com.joelj.jenkins;
 import com.cloudbees.jenkins.plugins.sshcredentials.*;
 import hudson.*;
 import hudson.model.TaskListener;
+import hudson.remoting.Pipe;
 import hudson.remoting.VirtualChannel;
 import org.apache.commons.io.*;
 import org.apache.commons.lang.StringUtils;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * User: Joel Johnson
@@ -16,20 +20,37 @@ import java.util.*;
  * Time: 10:43 AM
  */
 public class Git {
-	private final String gitExecutable;
+	/**
+	 * git's default log output encoding. Output is always decoded with it, so the result doesn't depend on which node ran the command.
+	 */
+	private static final String OUTPUT_CHARSET = "UTF-8";
+
+	private final GitCapabilities capabilities;
 	private final FilePath workspace;
 	private final /*nullable*/ TaskListener listener;
 	private final /*nullable*/ SSHUserPrivateKey sshCredentials;
 
 	public Git(String gitExecutable, FilePath workspace, TaskListener listener, SSHUserPrivateKey sshCredentials) {
-		this.gitExecutable = gitExecutable;
+		this(GitCapabilities.unknown(gitExecutable), workspace, listener, sshCredentials);
+	}
+
+	/**
+	 * @param capabilities Usually from {@link GitCapabilities#forWorkspace(hudson.FilePath, String)}.
+	 * 	Options that need a newer git, such as protocol v2 or %(describe), are only passed when the executable supports them.
+	 */
+	public Git(GitCapabilities capabilities, FilePath workspace, TaskListener listener, SSHUserPrivateKey sshCredentials) {
+		this.capabilities = capabilities;
 		this.workspace = workspace;
 		this.listener = listener;
 		this.sshCredentials = sshCredentials;
 	}
 
 	public String getGitExecutable() {
-		return gitExecutable;
+		return capabilities.getExecutable();
+	}
+
+	public GitCapabilities getCapabilities() {
+		return capabilities;
 	}
 
 	public FilePath getWorkspace() {
@@ -62,47 +83,169 @@ public class Git {
 	}
 
 	public void fetch(String remote) throws IOException, InterruptedException {
-		executeCommand(sshCredentials, "fetch", remote);
+		fetch(remote, true);
 	}
 
 	public void fetch(String remote, String... refSpecs) throws IOException, InterruptedException {
-		List<String> parameters = new ArrayList<String>();
-		parameters.add("fetch");
-		parameters.add(remote);
+		fetch(remote, true, refSpecs);
+	}
+
+	/**
+	 * On repositories with a huge number of refs, most of the time of a fetch is spent on the ref advertisement and negotiation.
+	 * So when the executable supports it:
+	 * <ul>
+	 *     <li>protocol v2 is used, which makes git send the prefixes of the given refspecs to the server so only matching refs are advertised.</li>
+	 *     <li>only HEAD and the existing refs the given refspecs write to are offered as negotiation tips.</li>
+	 * </ul>
+	 * @param followTags If false, tags pointing at the fetched history aren't fetched automatically.
+	 * 	If true, a --no-tags saved in the remote's config by an earlier clone is removed.
+	 * @param refSpecs Blank refspecs are ignored. If none are given, the remote's configured refspecs are used.
+	 */
+	public void fetch(String remote, boolean followTags, String... refSpecs) throws IOException, InterruptedException {
+		List<String> trimmedRefSpecs = new ArrayList<String>();
 		for (String refSpec : refSpecs) {
 			String trimmed = refSpec.trim();
 			if(!trimmed.isEmpty()) {
-				parameters.add(trimmed);
+				trimmedRefSpecs.add(trimmed);
 			}
 		}
+
+		List<String> parameters = new ArrayList<String>();
+		addProtocolOption(parameters);
+		parameters.add("fetch");
+		if(followTags) {
+			// A clone with --no-tags saves that in the remote's config, which would otherwise keep applying.
+			configUnset("remote." + remote + ".tagOpt");
+		} else {
+			parameters.add("--no-tags");
+		}
+		if(!trimmedRefSpecs.isEmpty() && capabilities.supports(GitCapabilities.Feature.NEGOTIATION_TIP)) {
+			for (String negotiationTip : findNegotiationTips(remote, trimmedRefSpecs)) {
+				parameters.add("--negotiation-tip=" + negotiationTip);
+			}
+		}
+		parameters.add(remote);
+		parameters.addAll(trimmedRefSpecs);
 		executeCommand(sshCredentials, parameters.toArray(new String[parameters.size()]));
 	}
 
+	/**
+	 * HEAD, plus the refs the given refspecs write to that already exist.
+	 * Only those are offered rather than all of the remote's tracking refs, since a glob like refs/remotes/origin/*
+	 * also matches every ref below it, such as pull request refs fetched to refs/remotes/origin/pr/*.
+	 * If none of them exist yet, the remote's tracking refs are offered after all.
+	 * Otherwise git would only have HEAD in common with the server, and could download much more history than needed.
+	 */
+	private List<String> findNegotiationTips(String remote, List<String> refSpecs) throws IOException, InterruptedException {
+		List<String> result = new ArrayList<String>();
+		result.add("HEAD");
+		for (String destination : findRefSpecDestinations(remote, refSpecs)) {
+			// git refuses to fetch if a non-glob tip doesn't exist
+			if(refExists(destination)) {
+				result.add(destination);
+			}
+		}
+		if(result.size() == 1) {
+			result.add("refs/remotes/" + remote + "/*");
+		}
+		return result;
+	}
+
+	/**
+	 * The refs the given refspecs write to.
+	 * A refspec without a destination still updates the remote-tracking ref of the branch it fetches,
+	 * so that ref is used instead.
+	 */
+	static Set<String> findRefSpecDestinations(String remote, List<String> refSpecs) {
+		Set<String> result = new LinkedHashSet<String>();
+		for (String refSpec : refSpecs) {
+			if(refSpec.startsWith("^")) {
+				continue; // negative refspecs don't write anything
+			}
+			int colon = refSpec.indexOf(':');
+			if(colon >= 0) {
+				String destination = refSpec.substring(colon + 1);
+				if(!destination.isEmpty()) {
+					result.add(destination);
+				}
+				continue;
+			}
+
+			String source = refSpec.startsWith("+") ? refSpec.substring(1) : refSpec;
+			if(source.startsWith("refs/heads/")) {
+				result.add("refs/remotes/" + remote + "/" + source.substring("refs/heads/".length()));
+			} else if(!source.startsWith("refs/")) {
+				result.add("refs/remotes/" + remote + "/" + source);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param ref A full ref name, or a glob.
+	 * @return True if the ref exists, or if the glob matches at least one ref.
+	 */
+	private boolean refExists(String ref) throws IOException, InterruptedException {
+		int star = ref.indexOf('*');
+		// for-each-ref matches a pattern without wildcards as a prefix up to a slash, so everything below the glob's directory is found without listing it all.
+		String pattern = star >= 0 ? ref.substring(0, ref.lastIndexOf('/', star) + 1) : ref;
+		String first = executeCommand("for-each-ref", "--count=1", "--format=%(refname)", pattern).trim();
+		return star >= 0 ? !first.isEmpty() : first.equals(ref);
+	}
+
 	public void checkout(String commitish) throws IOException, InterruptedException {
 		executeCommand("checkout", commitish);
 	}
 
 	public void cloneRepo(String host) throws IOException, InterruptedException {
-		executeCommand(sshCredentials, "clone", host, ".");
+		cloneRepo(host, true);
+	}
+
+	/**
+	 * @param followTags If false, and the executable supports it, tags aren't cloned.
+	 * 	Older versions clone all tags regardless.
+	 * 	git saves this in the remote's config as tagOpt, which {@link #fetch(String, boolean, String...)} removes again when following tags.
+	 */
+	public void cloneRepo(String host, boolean followTags) throws IOException, InterruptedException {
+		List<String> parameters = new ArrayList<String>();
+		addProtocolOption(parameters);
+		parameters.add("clone");
+		if(!followTags && capabilities.supports(GitCapabilities.Feature.CLONE_NO_TAGS)) {
+			parameters.add("--no-tags");
+		}
+		Collections.addAll(parameters, host, ".");
+		executeCommand(sshCredentials, parameters.toArray(new String[parameters.size()]));
 	}
 
 	/**
 	 * @return Null if no remote with the given name is found. Otherwise, the URL of the given remote.
 	 */
 	public String remoteGetUrl(String remote) throws IOException, InterruptedException {
-		String remotes = executeCommand("remote", "-v");
-		Scanner scanner = new Scanner(remotes);
-		while(scanner.hasNext()) {
-			String checkingRemote = scanner.next().trim();
-			String checkingUrl = scanner.next().trim();
-			scanner.next(); // this is a throwaway, but we need to advance the cursor. This is "(fetch)" or "(pull)"
-
-			if(checkingRemote.trim().equals(remote)) {
-				return checkingUrl;
+		try {
+			// Reads the local config only. `git remote -v` lists every remote, which we don't need.
+			String url = executeCommand("config", "--get", "remote." + remote + ".url").trim();
+			return url.isEmpty() ? null : url;
+		} catch (GitException e) {
+			// git config exits with 1 when the key doesn't exist. Anything else is a real error.
+			if(e.getExitCode() == 1) {
+				return null;
 			}
+			throw e;
 		}
+	}
 
-		return null;
+	/**
+	 * Does nothing if the key isn't set.
+	 */
+	private void configUnset(String key) throws IOException, InterruptedException {
+		try {
+			executeCommand("config", "--unset", key);
+		} catch (GitException e) {
+			// git config exits with 5 when the key doesn't exist. Anything else is a real error.
+			if(e.getExitCode() != 5) {
+				throw e;
+			}
+		}
 	}
 
 	public void remoteSetUrl(String remote, String url) throws IOException, InterruptedException {
@@ -149,6 +292,95 @@ public class Git {
 		}
 	}
 
+	/**
+	 * For commands with potentially large output, like log and whatchanged.
+	 * Rather than sending the output back as one big String, it's gzipped on the agent and sent through a {@link Pipe},
+	 * 	which is chunked and flow controlled by the channel, so other builds on the same agent aren't starved.
+	 */
+	private String executeStreamingCommand(Collection<String> command) throws IOException, InterruptedException {
+		String[] commandArray = command.toArray(new String[command.size()]);
+		if(!getWorkspace().isRemote()) {
+			// No channel to protect, so there's no reason to compress.
+			return executeCommand(commandArray);
+		}
+
+		Pipe pipe = Pipe.createRemoteToLocal();
+		final InputStream pipeInput = pipe.getIn();
+		Future<Integer> future = getWorkspace().actAsync(new StreamingGitFileCallable(getGitExecutable(), listener, pipe, commandArray));
+
+		// The pipe is read on its own thread so it can be watched together with the remote call.
+		// If the call fails before it writes anything, a read on this thread would block forever.
+		FutureTask<byte[]> reader = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				InputStream inputStream = new GZIPInputStream(pipeInput);
+				try {
+					return IOUtils.toByteArray(inputStream);
+				} finally {
+					IOUtils.closeQuietly(inputStream);
+				}
+			}
+		});
+		Thread readerThread = new Thread(reader, "SimpleGit output reader: " + StringUtils.join(commandArray, " "));
+		readerThread.setDaemon(true);
+		readerThread.start();
+
+		boolean success = false;
+		try {
+			int exitCode = waitFor(future, reader);
+			String result = new String(waitFor(reader, null), OUTPUT_CHARSET);
+			success = true;
+
+			if(exitCode != 0) {
+				throw new GitException(exitCode, result);
+			}
+			return result;
+		} finally {
+			if(!success) {
+				// Stop git on the agent, and unblock the reader if it's still waiting on the pipe.
+				future.cancel(true);
+				IOUtils.closeQuietly(pipeInput);
+				reader.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the given future, but stops early if the other one fails, since this one may then never finish.
+	 * @param other Nullable.
+	 */
+	private static <T> T waitFor(Future<T> future, Future<?> other) throws IOException, InterruptedException {
+		while(true) {
+			try {
+				return future.get(1, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				if(other != null && other.isDone()) {
+					// Throws if it failed, otherwise keep waiting
+					unwrap(other);
+				}
+			} catch (ExecutionException e) {
+				throw toIOException(e);
+			}
+		}
+	}
+
+	private static void unwrap(Future<?> future) throws IOException, InterruptedException {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			throw toIOException(e);
+		} catch (CancellationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static IOException toIOException(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if(cause instanceof IOException) {
+			return (IOException)cause;
+		}
+		return new IOException(cause);
+	}
+
 	private String createTempFile(FilePath filePath, final String content, final String fileName, final String fileExtension, final int permissions) throws IOException, InterruptedException {
 		return filePath.act(new CreateTempFileCallable(fileName, fileExtension, content, permissions));
 	}
@@ -177,6 +409,24 @@ public class Git {
 		return executeCommand("log", "-n1");
 	}
 
+	/**
+	 * Reads the hash, names, emails, date and message of the given commit with a single `git log` call.
+	 * @param fields Optional fields to include. Fields not requested are left null.
+	 */
+	public GitCommitMetadata commitMetadata(String commitish, Set<GitCommitMetadata.Field> fields) throws IOException, InterruptedException {
+		boolean describe = fields.contains(GitCommitMetadata.Field.DESCRIBE);
+		boolean inlineDescribe = describe && capabilities.supports(GitCapabilities.Feature.DESCRIBE_PLACEHOLDER);
+
+		String output = executeCommand("log", "-n1", "--no-color", "--encoding=" + OUTPUT_CHARSET, "--pretty=" + GitCommitMetadata.createFormat(fields, inlineDescribe), commitish, "--");
+		GitCommitMetadata metadata = GitCommitMetadata.parse(output, fields, inlineDescribe);
+
+		if(describe && metadata.getDescribe() == null) {
+			metadata.setDescribe(executeCommand("describe", "--tags", "--always", metadata.getHash()).trim());
+		}
+
+		return metadata;
+	}
+
 	public String log(String... parameters) throws IOException, InterruptedException {
 		List<String> list = new ArrayList<String>(parameters.length + 1);
 		list.add("log");
@@ -187,6 +437,9 @@ public class Git {
 	public String whatChanged(String revisionRangeStart, String revisionRangeEnd, boolean expandMerges, boolean includeMergeCommits) throws IOException, InterruptedException {
 		List<String> list = new ArrayList<String>();
 		list.add("whatchanged");
+		if(capabilities.supports(GitCapabilities.Feature.WHATCHANGED_DEPRECATED)) {
+			list.add("--i-still-use-this");
+		}
 		if(includeMergeCommits) {
 			list.add("--first-parent");
 		}
@@ -194,11 +447,31 @@ public class Git {
 			list.add("-m");
 		}
 		list.add("--pretty=raw");
+		list.add("--encoding=" + OUTPUT_CHARSET);
 		list.add("--no-abbrev");
 		list.add("-M");
 
 		list.add(revisionRangeStart+".."+revisionRangeEnd);
-		return executeCommand(list);
+		return executeStreamingCommand(list);
+	}
+
+	/**
+	 * Protocol v2 lets the client ask for only the refs it needs, rather than the server advertising all of them.
+	 * It's the default since 2.26, but has to be asked for on older versions.
+	 * Must be added before the git subcommand.
+	 */
+	private void addProtocolOption(List<String> command) {
+		if(capabilities.supports(GitCapabilities.Feature.PROTOCOL_V2)) {
+			command.add("-c");
+			command.add("protocol.version=2");
+		}
+	}
+
+	/**
+	 * @return The full SHA of the commit the given commitish points to.
+	 */
+	public String resolveCommit(String commitish) throws IOException, InterruptedException {
+		return executeCommand("rev-parse", "--verify", commitish + "^{commit}").trim();
 	}
 
 	/**
@@ -229,24 +502,9 @@ public class Git {
 		}
 
 		public String invoke(File workingDirectory, VirtualChannel channel) throws IOException, InterruptedException {
-			List<String> command = new ArrayList<String>(this.command.length + 1);
-			command.add(gitPath);
-			Collections.addAll(command, this.command);
-
-			if(listener != null) {
-				listener.getLogger().println("\t- Executing: `" + StringUtils.join(command, " ")+"`");
-			}
-
-			ProcessBuilder processBuilder = new ProcessBuilder(command);
-			if(gitSshPath != null) {
-				processBuilder.environment().put("GIT_SSH", gitSshPath);
-			}
-			processBuilder.redirectErrorStream(true);
-			processBuilder.directory(workingDirectory);
-
-			Process process = processBuilder.start();
+			Process process = startProcess(workingDirectory, gitPath, gitSshPath, listener, command);
 			byte[] bytes = IOUtils.toByteArray(process.getInputStream());
-			String result = new String(bytes);
+			String result = new String(bytes, OUTPUT_CHARSET);
 
 			int exitCode = process.waitFor();
 			if(exitCode != 0) {
@@ -257,6 +515,74 @@ public class Git {
 		}
 	}
 
+	/**
+	 * Writes the gzipped output of the command to the given pipe and returns the exit code.
+	 * The caller is responsible for reading the pipe and reporting errors, since it's the one with the output.
+	 */
+	private static class StreamingGitFileCallable implements FilePath.FileCallable<Integer> {
+		private static final int BUFFER_SIZE = 64 * 1024;
+
+		private final String gitPath;
+		private final TaskListener listener;
+		private final Pipe pipe;
+		private final String[] command;
+
+		public StreamingGitFileCallable(String gitPath, TaskListener listener, Pipe pipe, String... command) {
+			this.gitPath = gitPath;
+			this.listener = listener;
+			this.pipe = pipe;
+			this.command = command;
+		}
+
+		public Integer invoke(File workingDirectory, VirtualChannel channel) throws IOException, InterruptedException {
+			// Open the gzip stream first so the reading side always gets a valid (if empty) stream, even if git can't be started.
+			OutputStream outputStream = new GZIPOutputStream(pipe.getOut(), BUFFER_SIZE);
+			Process process = null;
+			boolean finished = false;
+			try {
+				process = startProcess(workingDirectory, gitPath, null, listener, command);
+				InputStream processOutput = process.getInputStream();
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read;
+					while((read = processOutput.read(buffer)) >= 0) {
+						outputStream.write(buffer, 0, read);
+					}
+				} finally {
+					processOutput.close();
+				}
+				int exitCode = process.waitFor();
+				finished = true;
+				return exitCode;
+			} finally {
+				if(process != null && !finished) {
+					// The controller stopped reading or the call was cancelled. Don't leave git running.
+					process.destroy();
+				}
+				IOUtils.closeQuietly(outputStream);
+			}
+		}
+	}
+
+	private static Process startProcess(File workingDirectory, String gitPath, String gitSshPath, TaskListener listener, String... arguments) throws IOException {
+		List<String> command = new ArrayList<String>(arguments.length + 1);
+		command.add(gitPath);
+		Collections.addAll(command, arguments);
+
+		if(listener != null) {
+			listener.getLogger().println("\t- Executing: `" + StringUtils.join(command, " ")+"`");
+		}
+
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		if(gitSshPath != null) {
+			processBuilder.environment().put("GIT_SSH", gitSshPath);
+		}
+		processBuilder.redirectErrorStream(true);
+		processBuilder.directory(workingDirectory);
+
+		return processBuilder.start();
+	}
+
 	private static class AddFetchCallable implements FilePath.FileCallable<Object> {
 		private final String refspec;
 		private final String remote;
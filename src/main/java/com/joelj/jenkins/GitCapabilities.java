@@ -0,0 +1,217 @@
+package com.joelj.jenkins;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The git executable found on a node, its version, and what that version supports.
+ *
+ * Probing takes a round trip and a process on the agent, so the result is cached per channel.
+ * When the agent reconnects it gets a new channel, and is probed again.
+ */
+public class GitCapabilities implements Serializable {
+	private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d+)\\.(\\d+)(?:\\.(\\d+))?");
+
+	private static final Map<VirtualChannel, Map<String, GitCapabilities>> cache = new WeakHashMap<VirtualChannel, Map<String, GitCapabilities>>();
+
+	public enum Feature {
+		/**
+		 * `git clone --no-tags`.
+		 */
+		CLONE_NO_TAGS(2, 14),
+		PROTOCOL_V2(2, 18),
+		NEGOTIATION_TIP(2, 19),
+		/**
+		 * %(describe:tags) in --pretty formats. %(describe) itself is from 2.32, but the tags option is from 2.35.
+		 * Older versions print the placeholder as is.
+		 */
+		DESCRIBE_PLACEHOLDER(2, 35),
+		/**
+		 * `git whatchanged` refuses to run without --i-still-use-this.
+		 */
+		WHATCHANGED_DEPRECATED(2, 51);
+
+		private final int major;
+		private final int minor;
+
+		Feature(int major, int minor) {
+			this.major = major;
+			this.minor = minor;
+		}
+
+		public boolean isSupportedBy(int major, int minor) {
+			return major > this.major || (major == this.major && minor >= this.minor);
+		}
+	}
+
+	private final String executable;
+	private final String version;
+	private final Set<Feature> features;
+
+	public GitCapabilities(String executable, String version, Set<Feature> features) {
+		this.executable = executable;
+		this.version = version;
+		this.features = features.isEmpty() ? EnumSet.noneOf(Feature.class) : EnumSet.copyOf(features);
+	}
+
+	/**
+	 * Used when nothing is known about the executable. All features are assumed to be missing.
+	 */
+	public static GitCapabilities unknown(String executable) {
+		return new GitCapabilities(executable, null, EnumSet.noneOf(Feature.class));
+	}
+
+	/**
+	 * @param configuredExecutable The path from the global configuration. If it doesn't exist on the node,
+	 * 	or if it's blank, the executable is looked up on the node's PATH.
+	 */
+	public static GitCapabilities forWorkspace(FilePath workspace, String configuredExecutable) throws IOException, InterruptedException {
+		String key = configuredExecutable == null ? "" : configuredExecutable.trim();
+		VirtualChannel channel = workspace.getChannel();
+
+		synchronized (cache) {
+			Map<String, GitCapabilities> capabilitiesForChannel = cache.get(channel);
+			if(capabilitiesForChannel != null && capabilitiesForChannel.containsKey(key)) {
+				return capabilitiesForChannel.get(key);
+			}
+		}
+
+		// Probe outside the lock so one slow agent doesn't block the others
+		GitCapabilities capabilities = workspace.act(new ProbeCallable(key));
+
+		synchronized (cache) {
+			Map<String, GitCapabilities> capabilitiesForChannel = cache.get(channel);
+			if(capabilitiesForChannel == null) {
+				capabilitiesForChannel = new HashMap<String, GitCapabilities>();
+				cache.put(channel, capabilitiesForChannel);
+			}
+			capabilitiesForChannel.put(key, capabilities);
+		}
+
+		return capabilities;
+	}
+
+	public String getExecutable() {
+		return executable;
+	}
+
+	/**
+	 * @return Null if the version is unknown.
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	public boolean supports(Feature feature) {
+		return features.contains(feature);
+	}
+
+	@Override
+	public String toString() {
+		return executable + " (" + (version == null ? "unknown version" : version) + ") " + features;
+	}
+
+	/**
+	 * Split on both separators, since the configured path may have been written for a node with a different OS than this one.
+	 * @return The file name without any directories or ".exe", or "git" if nothing is configured.
+	 */
+	static String baseName(String configuredExecutable) {
+		String name = configuredExecutable == null ? "" : configuredExecutable.trim();
+		name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+		if(name.toLowerCase(Locale.ENGLISH).endsWith(".exe")) {
+			name = name.substring(0, name.length() - ".exe".length());
+		}
+		return name.isEmpty() ? "git" : name;
+	}
+
+	static List<String> candidateNames(String baseName, boolean windows) {
+		if(windows) {
+			return Arrays.asList(baseName + ".exe", baseName);
+		}
+		return Collections.singletonList(baseName);
+	}
+
+	static Set<Feature> parseFeatures(String version) {
+		Set<Feature> result = EnumSet.noneOf(Feature.class);
+		Matcher matcher = VERSION_PATTERN.matcher(version);
+		if(matcher.find()) {
+			int major = Integer.parseInt(matcher.group(1));
+			int minor = Integer.parseInt(matcher.group(2));
+			for (Feature feature : Feature.values()) {
+				if(feature.isSupportedBy(major, minor)) {
+					result.add(feature);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static class ProbeCallable implements FilePath.FileCallable<GitCapabilities> {
+		private final String configuredExecutable;
+
+		public ProbeCallable(String configuredExecutable) {
+			this.configuredExecutable = configuredExecutable;
+		}
+
+		public GitCapabilities invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			String executable = resolveExecutable();
+			if(executable == null) {
+				throw new IOException("Could not find git executable '" + configuredExecutable + "' on this node or on its PATH.");
+			}
+
+			ProcessBuilder processBuilder = new ProcessBuilder(executable, "--version");
+			processBuilder.redirectErrorStream(true);
+			Process process = processBuilder.start();
+			String output = new String(IOUtils.toByteArray(process.getInputStream())).trim();
+
+			int exitCode = process.waitFor();
+			if(exitCode != 0) {
+				throw new GitException(exitCode, output);
+			}
+
+			// "git version 2.39.2" or "git version 2.39.2.windows.1"
+			String version = output.startsWith("git version ") ? output.substring("git version ".length()) : output;
+			return new GitCapabilities(executable, version, parseFeatures(version));
+		}
+
+		/**
+		 * The configured path is used if it exists and is executable on this node.
+		 * Otherwise its file name is looked up on this node's PATH, since the path may be for a node with a different OS or layout.
+		 * @return Null if no executable can be found.
+		 */
+		private String resolveExecutable() {
+			if(!configuredExecutable.isEmpty()) {
+				File configured = new File(configuredExecutable);
+				if(configured.isFile() && configured.canExecute()) {
+					return configured.getAbsolutePath();
+				}
+			}
+
+			String path = System.getenv("PATH");
+			if(path == null) {
+				return null;
+			}
+
+			boolean windows = File.pathSeparatorChar == ';';
+			List<String> names = candidateNames(baseName(configuredExecutable), windows);
+			for (String directory : path.split(Pattern.quote(File.pathSeparator))) {
+				for (String name : names) {
+					File candidate = new File(directory, name);
+					if(candidate.isFile() && candidate.canExecute()) {
+						return candidate.getAbsolutePath();
+					}
+				}
+			}
+
+			return null;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.joelj.jenkins;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Everything we want to know about a single commit, read with one `git log` call.
+ *
+ * The fields are requested with a NUL-delimited --pretty format so empty values and multi-line values
+ * (such as the commit message) can't shift the other fields around.
+ */
+public class GitCommitMetadata implements Serializable {
+	private static final String SEPARATOR = "%x00";
+	private static final String[] REQUIRED_PLACEHOLDERS = { "%H", "%cn", "%an", "%ce", "%ae", "%ad", "%p" };
+	private static final String[] DESCRIBE_PLACEHOLDERS = { "%(describe:tags)", "%h" };
+
+	/**
+	 * Optional fields. They are only asked for when requested, so the default query stays small.
+	 */
+	public enum Field {
+		PARENTS("%P"),
+		TREE("%T"),
+		TAGS("%d"),
+		/**
+		 * Author and committer dates, in seconds since the epoch.
+		 */
+		TIMESTAMPS("%at", "%ct"),
+		/**
+		 * Only available as a --pretty placeholder since git 2.35. Older versions need an extra `git describe` call.
+		 * Its placeholders are added by {@link #createFormat(java.util.Set, boolean)} rather than here for that reason.
+		 */
+		DESCRIBE;
+
+		private final String[] placeholders;
+
+		Field(String... placeholders) {
+			this.placeholders = placeholders;
+		}
+
+		public String[] getPlaceholders() {
+			return placeholders;
+		}
+	}
+
+	private final String hash;
+	private final String committerName;
+	private final String authorName;
+	private final String committerEmail;
+	private final String authorEmail;
+	private final String authorDate;
+	private final String message;
+	private final List<String> abbreviatedParents;
+
+	private List<String> parents;
+	private String tree;
+	private List<String> tags;
+	private String authorTimestamp;
+	private String committerTimestamp;
+	private String describe;
+
+	private GitCommitMetadata(String hash, String committerName, String authorName, String committerEmail, String authorEmail, String authorDate, String message, List<String> abbreviatedParents) {
+		this.hash = hash;
+		this.committerName = committerName;
+		this.authorName = authorName;
+		this.committerEmail = committerEmail;
+		this.authorEmail = authorEmail;
+		this.authorDate = authorDate;
+		this.message = message;
+		this.abbreviatedParents = abbreviatedParents;
+	}
+
+	/**
+	 * @return The value to pass to `git log --pretty=` for the given optional fields.
+	 * 	The commit message is always last since it's the only field that can't be trimmed.
+	 * @param inlineDescribe True if {@link Field#DESCRIBE} is requested and git supports %(describe:tags).
+	 * 	If false, the caller has to run `git describe` itself.
+	 */
+	public static String createFormat(Set<Field> fields, boolean inlineDescribe) {
+		StringBuilder sb = new StringBuilder("format:");
+		for (String placeholder : REQUIRED_PLACEHOLDERS) {
+			sb.append(placeholder).append(SEPARATOR);
+		}
+		for (Field field : fields) {
+			for (String placeholder : field.getPlaceholders()) {
+				sb.append(placeholder).append(SEPARATOR);
+			}
+		}
+		if(inlineDescribe) {
+			for (String placeholder : DESCRIBE_PLACEHOLDERS) {
+				sb.append(placeholder).append(SEPARATOR);
+			}
+		}
+		sb.append("%B");
+		return sb.toString();
+	}
+
+	/**
+	 * Parses the output of `git log -n1 --pretty=` using the format from {@link #createFormat(java.util.Set, boolean)}.
+	 * @param fields Must be the same fields that were used to create the format.
+	 * @param inlineDescribe Must be the same value that was used to create the format.
+	 */
+	public static GitCommitMetadata parse(String output, Set<Field> fields, boolean inlineDescribe) throws IOException {
+		int expected = REQUIRED_PLACEHOLDERS.length + 1;
+		for (Field field : fields) {
+			expected += field.getPlaceholders().length;
+		}
+		if(inlineDescribe) {
+			expected += DESCRIBE_PLACEHOLDERS.length;
+		}
+
+		String[] split = output.split("\0", expected);
+		if(split.length != expected) {
+			throw new IOException("Unexpected output from git log. Expected " + expected + " fields but got " + split.length + ": " + output);
+		}
+
+		int i = 0;
+		String hash = split[i++].trim();
+		String committerName = split[i++];
+		String authorName = split[i++];
+		String committerEmail = split[i++];
+		String authorEmail = split[i++];
+		String authorDate = split[i++];
+		List<String> abbreviatedParents = splitWords(split[i++]);
+
+		GitCommitMetadata metadata = new GitCommitMetadata(hash, committerName, authorName, committerEmail, authorEmail, authorDate, split[expected - 1], abbreviatedParents);
+
+		for (Field field : fields) {
+			switch (field) {
+				case PARENTS:
+					metadata.parents = splitWords(split[i++]);
+					break;
+				case TREE:
+					metadata.tree = split[i++].trim();
+					break;
+				case TAGS:
+					metadata.tags = parseTags(split[i++]);
+					break;
+				case TIMESTAMPS:
+					metadata.authorTimestamp = split[i++].trim();
+					metadata.committerTimestamp = split[i++].trim();
+					break;
+				case DESCRIBE:
+					break;
+			}
+		}
+
+		if(inlineDescribe) {
+			String describe = split[i++].trim();
+			String abbreviatedHash = split[i++].trim();
+			if(describe.startsWith("%(describe")) {
+				// git didn't understand the placeholder. Leave it null so the caller falls back to `git describe`.
+				metadata.describe = null;
+			} else {
+				// Match `git describe --always`, which falls back to the abbreviated hash when no tag is reachable.
+				metadata.describe = describe.isEmpty() ? abbreviatedHash : describe;
+			}
+		}
+
+		return metadata;
+	}
+
+	/**
+	 * %d looks like " (HEAD, tag: v1.0, origin/master)". Only the tags are kept.
+	 */
+	static List<String> parseTags(String decorations) {
+		List<String> result = new ArrayList<String>();
+		String trimmed = decorations.trim();
+		if(trimmed.startsWith("(") && trimmed.endsWith(")")) {
+			trimmed = trimmed.substring(1, trimmed.length() - 1);
+		}
+		for (String decoration : trimmed.split(",")) {
+			String ref = decoration.trim();
+			if(ref.startsWith("tag: ")) {
+				result.add(ref.substring("tag: ".length()).trim());
+			}
+		}
+		return result;
+	}
+
+	private static List<String> splitWords(String value) {
+		List<String> result = new ArrayList<String>();
+		for (String word : value.trim().split("\\s+")) {
+			if(!word.isEmpty()) {
+				result.add(word);
+			}
+		}
+		return result;
+	}
+
+	void setDescribe(String describe) {
+		this.describe = describe;
+	}
+
+	/**
+	 * @return A summary in the same layout as `git log -n1`.
+	 * 	Unlike git, leading and trailing blank lines of the message are left out.
+	 */
+	public String getHeadSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("commit ").append(hash).append("\n");
+		if(abbreviatedParents.size() > 1) {
+			sb.append("Merge:");
+			for (String parent : abbreviatedParents) {
+				sb.append(" ").append(parent);
+			}
+			sb.append("\n");
+		}
+		sb.append("Author: ").append(authorName).append(" <").append(authorEmail).append(">\n");
+		sb.append("Date:   ").append(authorDate).append("\n\n");
+		Scanner scanner = new Scanner(message.trim());
+		try {
+			while(scanner.hasNextLine()) {
+				sb.append("    ").append(scanner.nextLine()).append("\n");
+			}
+		} finally {
+			scanner.close();
+		}
+		return sb.toString();
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public String getCommitterName() {
+		return committerName;
+	}
+
+	public String getAuthorName() {
+		return authorName;
+	}
+
+	public String getCommitterEmail() {
+		return committerEmail;
+	}
+
+	public String getAuthorEmail() {
+		return authorEmail;
+	}
+
+	/**
+	 * @return The author date as `git log` shows it by default. See {@link #getAuthorTimestamp()} for a machine readable one.
+	 */
+	public String getAuthorDate() {
+		return authorDate;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return Null unless {@link Field#PARENTS} was requested.
+	 */
+	public List<String> getParents() {
+		return parents;
+	}
+
+	/**
+	 * @return Null unless {@link Field#TREE} was requested.
+	 */
+	public String getTree() {
+		return tree;
+	}
+
+	/**
+	 * @return Null unless {@link Field#TAGS} was requested.
+	 */
+	public List<String> getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return Null unless {@link Field#TIMESTAMPS} was requested. Seconds since the epoch.
+	 */
+	public String getAuthorTimestamp() {
+		return authorTimestamp;
+	}
+
+	/**
+	 * @return Null unless {@link Field#TIMESTAMPS} was requested. Seconds since the epoch.
+	 */
+	public String getCommitterTimestamp() {
+		return committerTimestamp;
+	}
+
+	/**
+	 * @return Null unless {@link Field#DESCRIBE} was requested.
+	 */
+	public String getDescribe() {
+		return describe;
+	}
+}
@@ -9,7 +9,14 @@ import java.io.Serializable;
  * Time: 11:06 AM
  */
 public class GitException extends IOException implements Serializable {
+	private final int exitCode;
+
 	public GitException(int exitCode, String message) {
 		super("Git exited with a value of: " + exitCode + ". " + message.trim());
+		this.exitCode = exitCode;
+	}
+
+	public int getExitCode() {
+		return exitCode;
 	}
 }
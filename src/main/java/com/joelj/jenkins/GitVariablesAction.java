@@ -5,6 +5,8 @@ import hudson.model.AbstractBuild;
 import hudson.model.Action;
 import hudson.model.EnvironmentContributingAction;
 
+import org.apache.commons.lang.StringUtils;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,6 +27,32 @@ public class GitVariablesAction implements EnvironmentContributingAction {
 		map.put(prefix+"COMMIT_MESSAGE", commitMessage);
 	}
 
+	/**
+	 * Optional fields that weren't requested from git aren't added.
+	 */
+	public GitVariablesAction(String prefix, GitCommitMetadata metadata) {
+		this(prefix, metadata.getHash(), metadata.getCommitterName(), metadata.getAuthorName(), metadata.getCommitterEmail(), metadata.getAuthorEmail(), metadata.getMessage());
+
+		if(metadata.getParents() != null) {
+			map.put(prefix+"PARENTS", StringUtils.join(metadata.getParents(), " "));
+		}
+		if(metadata.getTree() != null) {
+			map.put(prefix+"TREE", metadata.getTree());
+		}
+		if(metadata.getTags() != null) {
+			map.put(prefix+"TAGS", StringUtils.join(metadata.getTags(), " "));
+		}
+		if(metadata.getAuthorTimestamp() != null) {
+			map.put(prefix+"AUTHOR_TIMESTAMP", metadata.getAuthorTimestamp());
+		}
+		if(metadata.getCommitterTimestamp() != null) {
+			map.put(prefix+"COMMITTER_TIMESTAMP", metadata.getCommitterTimestamp());
+		}
+		if(metadata.getDescribe() != null) {
+			map.put(prefix+"DESCRIBE", metadata.getDescribe());
+		}
+	}
+
 	public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
 		env.putAll(map);
 	}
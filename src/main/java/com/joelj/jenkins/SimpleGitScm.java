@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.logging.*;
 
 /**
@@ -31,13 +33,6 @@ import java.util.logging.*;
 public class SimpleGitScm extends SCM implements Serializable {
 	private static final Logger logger = Logger.getLogger("SimpleGit");
 
-	public static final String NEWLINE = "%n";
-	public static final String HASH = "%H";
-	public static final String COMMITTER_NAME = "%cn";
-	public static final String AUTHOR_NAME = "%an";
-	public static final String COMMITTER_EMAIL = "%ce";
-	public static final String AUTHOR_EMAIL = "%ae";
-
 	private String host;
 	private String refSpec;
 	private String revisionRangeStart;
@@ -48,6 +43,12 @@ public class SimpleGitScm extends SCM implements Serializable {
 	private boolean gitLogging;
 	private String credentials;
 	private Integer numberOfRetryClones;
+	private boolean exportParents;
+	private boolean exportTree;
+	private boolean exportTags;
+	private boolean exportTimestamps;
+	private boolean exportDescribe;
+	private boolean skipTags;
 
 	// Deprecated fields are fields that were in older versions that we don't support anymore.
 	// But they have to remain here so jenkins doesn't puke when trying to load them
@@ -56,7 +57,7 @@ public class SimpleGitScm extends SCM implements Serializable {
 	private transient String branch;
 
 	@DataBoundConstructor
-	public SimpleGitScm(String host, String refSpec, String revisionRangeStart, String revisionRangeEnd, boolean expandMerges, boolean showMergeCommits, boolean clearWorkspace, boolean gitLogging, String credentials, Integer numberOfRetryClones) {
+	public SimpleGitScm(String host, String refSpec, String revisionRangeStart, String revisionRangeEnd, boolean expandMerges, boolean showMergeCommits, boolean clearWorkspace, boolean gitLogging, String credentials, Integer numberOfRetryClones, boolean exportParents, boolean exportTree, boolean exportTags, boolean exportTimestamps, boolean exportDescribe, boolean skipTags) {
 		this.host = host;
 		this.refSpec = refSpec;
 		this.revisionRangeEnd = revisionRangeEnd == null || revisionRangeEnd.trim().isEmpty() ? "HEAD" : revisionRangeEnd;
@@ -69,6 +70,12 @@ public class SimpleGitScm extends SCM implements Serializable {
 		this.credentials = credentials;
 
 		this.numberOfRetryClones = numberOfRetryClones;
+		this.exportParents = exportParents;
+		this.exportTree = exportTree;
+		this.exportTags = exportTags;
+		this.exportTimestamps = exportTimestamps;
+		this.exportDescribe = exportDescribe;
+		this.skipTags = skipTags;
 	}
 
 	@Override
@@ -96,13 +103,13 @@ public class SimpleGitScm extends SCM implements Serializable {
 			workspace.deleteContents();
 		}
 
-		String gitExecutablePath = getDescriptor().getExecutablePath();
-		if(gitExecutablePath == null || gitExecutablePath.isEmpty()) {
-			throw new NullPointerException("No git executable path is specified. Configure one under 'Simple Git' in the global configuration");
+		GitCapabilities capabilities = GitCapabilities.forWorkspace(workspace, getDescriptor().getExecutablePath());
+		if(gitLogging) {
+			logger.println("SimpleGit: using " + capabilities);
 		}
 
 		SSHUserPrivateKey sshCredentials = findSshCredentials();
-		Git git = new Git(gitExecutablePath, workspace, gitLogging ? listener : null, sshCredentials);
+		Git git = new Git(capabilities, workspace, gitLogging ? listener : null, sshCredentials);
 		FilePath gitDir = new FilePath(workspace, ".git");
 
 		int numberOfRetryClones = getNumberOfRetryClones();
@@ -144,11 +151,12 @@ public class SimpleGitScm extends SCM implements Serializable {
 			}
 		}
 
-		logger.println(git.showHead());
+		GitCommitMetadata head = git.commitMetadata("HEAD", getMetadataFields());
+		logger.println(head.getHeadSummary());
 
-		addGitVariablesToBuild(build, git);
+		build.addAction(new GitVariablesAction("SIMPLE_GIT_", head));
 
-		FileUtils.writeStringToFile(changelogFile, git.whatChanged(revisionRangeStartExpanded, revisionRangeEndExpanded, getExpandMerges(), getShowMergeCommits()));
+		FileUtils.writeStringToFile(changelogFile, getChangeLog(git, hostExpanded, revisionRangeStartExpanded, head.getHash(), logger));
 
 		return true;
 	}
@@ -169,9 +177,9 @@ public class SimpleGitScm extends SCM implements Serializable {
 		}
 
 		if(refSpecExpanded == null || refSpecExpanded.isEmpty()) {
-			git.fetch("origin");
+			git.fetch("origin", !getSkipTags());
 		} else {
-			git.fetch("origin", refSpecExpanded.split("\n"));
+			git.fetch("origin", !getSkipTags(), refSpecExpanded.split("\n"));
 		}
 
 		git.checkout(revisionRangeEndExpanded);
@@ -179,31 +187,57 @@ public class SimpleGitScm extends SCM implements Serializable {
 	}
 
 	private void checkoutFromNewClone(String hostExpanded, String revisionRangeEndExpanded, String refSpecExpanded, Git git) throws IOException, InterruptedException {
-		git.cloneRepo(hostExpanded);
+		git.cloneRepo(hostExpanded, !getSkipTags());
 
 		if(refSpecExpanded == null || refSpecExpanded.isEmpty()) {
-			git.fetch("origin");
+			git.fetch("origin", !getSkipTags());
 		} else {
-			git.fetch("origin", refSpecExpanded.split("\n"));
+			git.fetch("origin", !getSkipTags(), refSpecExpanded.split("\n"));
 		}
 
 		git.checkout(revisionRangeEndExpanded);
 		git.revParse("HEAD");
 	}
 
-	private void addGitVariablesToBuild(AbstractBuild<?, ?> build, Git git) throws IOException, InterruptedException {
-		String log = git.log("-n1", "--pretty=" + HASH + NEWLINE + COMMITTER_NAME + NEWLINE + AUTHOR_NAME + NEWLINE + COMMITTER_EMAIL + NEWLINE + AUTHOR_EMAIL);
-
-		String[] split = log.split("\n");
-		String currentRevision = split[0];
-		String committer = split[1];
-		String author = split[2];
-		String committerEmail = split[3];
-		String authorEmail = split[4];
+	/**
+	 * Hook triggered jobs often build the same range, so the changelog is cached on the controller by the resolved SHAs.
+	 */
+	private String getChangeLog(final Git git, String hostExpanded, String revisionRangeStartExpanded, final String headSha, final PrintStream logger) throws IOException, InterruptedException {
+		final String startSha = git.resolveCommit(revisionRangeStartExpanded);
+		final ChangeLogCache.Key key = new ChangeLogCache.Key(hostExpanded, startSha, headSha, getExpandMerges(), getShowMergeCommits());
+
+		final boolean[] generated = new boolean[1];
+		String changeLog = ChangeLogCache.getInstance().get(key, new ChangeLogCache.Generator() {
+			public String generate() throws IOException, InterruptedException {
+				generated[0] = true;
+				return git.whatChanged(startSha, headSha, getExpandMerges(), getShowMergeCommits());
+			}
+		});
 
-		String commitMessage = git.log("-n1", "--pretty=%B");
+		if(!generated[0]) {
+			logger.println("SimpleGit: using cached changelog for " + key);
+		}
+		return changeLog;
+	}
 
-		build.addAction(new GitVariablesAction("SIMPLE_GIT_", currentRevision, committer, author, committerEmail, authorEmail, commitMessage));
+	private Set<GitCommitMetadata.Field> getMetadataFields() {
+		Set<GitCommitMetadata.Field> fields = EnumSet.noneOf(GitCommitMetadata.Field.class);
+		if(getExportParents()) {
+			fields.add(GitCommitMetadata.Field.PARENTS);
+		}
+		if(getExportTree()) {
+			fields.add(GitCommitMetadata.Field.TREE);
+		}
+		if(getExportTags()) {
+			fields.add(GitCommitMetadata.Field.TAGS);
+		}
+		if(getExportTimestamps()) {
+			fields.add(GitCommitMetadata.Field.TIMESTAMPS);
+		}
+		if(getExportDescribe()) {
+			fields.add(GitCommitMetadata.Field.DESCRIBE);
+		}
+		return fields;
 	}
 
 	@Override
@@ -278,6 +312,36 @@ public class SimpleGitScm extends SCM implements Serializable {
 		return numberOfRetryClones == null || numberOfRetryClones <= 0 ? 1 : numberOfRetryClones;
 	}
 
+	@Exported
+	public boolean getExportParents() {
+		return exportParents;
+	}
+
+	@Exported
+	public boolean getExportTree() {
+		return exportTree;
+	}
+
+	@Exported
+	public boolean getExportTags() {
+		return exportTags;
+	}
+
+	@Exported
+	public boolean getExportTimestamps() {
+		return exportTimestamps;
+	}
+
+	@Exported
+	public boolean getExportDescribe() {
+		return exportDescribe;
+	}
+
+	@Exported
+	public boolean getSkipTags() {
+		return skipTags;
+	}
+
 	public SSHUserPrivateKey findSshCredentials() {
 		if(getCredentials() != null && !getCredentials().isEmpty()) {
 			for (Credentials credentials : SystemCredentialsProvider.getInstance().getCredentials()) {
@@ -301,10 +365,12 @@ public class SimpleGitScm extends SCM implements Serializable {
 	@Extension
 	public static final class DescriptorImpl extends SCMDescriptor<SimpleGitScm> {
 		private String executablePath;
+		private Integer changeLogCacheSize;
 
 		public DescriptorImpl() {
 			super(SimpleGitScm.class, null);
 			load();
+			ChangeLogCache.getInstance().setMaxSizeMb(getChangeLogCacheSize());
 		}
 
 		@Override
@@ -327,6 +393,19 @@ public class SimpleGitScm extends SCM implements Serializable {
 			this.executablePath = value;
 		}
 
+		/**
+		 * @return Size in megabytes of the controller side changelog cache. See {@link ChangeLogCache#setMaxSizeMb(int)}.
+		 */
+		public int getChangeLogCacheSize() {
+			return changeLogCacheSize == null ? ChangeLogCache.DEFAULT_MAX_SIZE_MB : changeLogCacheSize;
+		}
+
+		@SuppressWarnings("UnusedDeclaration")
+		public void setChangeLogCacheSize(Integer value) {
+			this.changeLogCacheSize = value;
+			ChangeLogCache.getInstance().setMaxSizeMb(getChangeLogCacheSize());
+		}
+
 		public SCM newInstance(StaplerRequest req, JSONObject formData) throws FormException {
 			return super.newInstance(req, formData);
 		}
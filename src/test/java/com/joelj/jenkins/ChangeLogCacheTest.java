@@ -0,0 +1,130 @@
+package com.joelj.jenkins;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ChangeLogCacheTest {
+	private static ChangeLogCache.Key key(String endSha) {
+		return new ChangeLogCache.Key("git@example.com:repo.git", "start", endSha, false, true);
+	}
+
+	private static String changeLog(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append('x');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		ChangeLogCache cache = new ChangeLogCache(10);
+		cache.put(key("a"), changeLog(4));
+		cache.put(key("b"), changeLog(4));
+		cache.get(key("a"));
+		cache.put(key("c"), changeLog(4));
+
+		assertNotNull(cache.get(key("a")));
+		assertNull(cache.get(key("b")));
+		assertNotNull(cache.get(key("c")));
+	}
+
+	@Test
+	public void entryLargerThanLimitIsNotKept() {
+		ChangeLogCache cache = new ChangeLogCache(10);
+		cache.put(key("a"), changeLog(4));
+		cache.put(key("big"), changeLog(11));
+
+		assertNull(cache.get(key("big")));
+		assertNull(cache.get(key("a")));
+
+		cache.put(key("b"), changeLog(4));
+		assertNotNull(cache.get(key("b")));
+	}
+
+	@Test
+	public void zeroOrLessDisablesTheCache() {
+		ChangeLogCache cache = new ChangeLogCache(10);
+		cache.put(key("a"), changeLog(4));
+
+		cache.setMaxSizeMb(-1);
+		assertNull(cache.get(key("a")));
+
+		cache.put(key("b"), changeLog(1));
+		assertNull(cache.get(key("b")));
+	}
+
+	@Test
+	public void differentOptionsAreDifferentKeys() {
+		ChangeLogCache cache = new ChangeLogCache(100);
+		cache.put(new ChangeLogCache.Key("repo", "a", "b", false, false), "one");
+
+		assertNull(cache.get(new ChangeLogCache.Key("repo", "a", "b", true, false)));
+		assertEquals("one", cache.get(new ChangeLogCache.Key("repo", "a", "b", false, false)));
+	}
+
+	@Test
+	public void concurrentCallersShareOneGeneration() throws Exception {
+		final ChangeLogCache cache = new ChangeLogCache(100);
+		final AtomicInteger generations = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final ChangeLogCache.Generator generator = new ChangeLogCache.Generator() {
+			public String generate() throws IOException, InterruptedException {
+				generations.incrementAndGet();
+				started.countDown();
+				release.await();
+				return "changelog";
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Callable<String> call = new Callable<String>() {
+				public String call() throws Exception {
+					return cache.get(key("a"), generator);
+				}
+			};
+			Future<String> first = executor.submit(call);
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Future<String> second = executor.submit(call);
+			Future<String> third = executor.submit(call);
+
+			release.countDown();
+
+			assertEquals("changelog", first.get(10, TimeUnit.SECONDS));
+			assertEquals("changelog", second.get(10, TimeUnit.SECONDS));
+			assertEquals("changelog", third.get(10, TimeUnit.SECONDS));
+			assertEquals(1, generations.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void failedGenerationIsNotCached() throws Exception {
+		ChangeLogCache cache = new ChangeLogCache(100);
+		try {
+			cache.get(key("a"), new ChangeLogCache.Generator() {
+				public String generate() throws IOException {
+					throw new IOException("boom");
+				}
+			});
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			assertEquals("boom", e.getMessage());
+		}
+
+		assertEquals("changelog", cache.get(key("a"), new ChangeLogCache.Generator() {
+			public String generate() {
+				return "changelog";
+			}
+		}));
+	}
+}
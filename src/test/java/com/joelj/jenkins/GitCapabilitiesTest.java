@@ -0,0 +1,72 @@
+package com.joelj.jenkins;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class GitCapabilitiesTest {
+	@Test
+	public void parseFeaturesFromPlainVersion() {
+		Set<GitCapabilities.Feature> features = GitCapabilities.parseFeatures("2.20.1");
+
+		assertEquals(EnumSet.of(GitCapabilities.Feature.CLONE_NO_TAGS, GitCapabilities.Feature.PROTOCOL_V2, GitCapabilities.Feature.NEGOTIATION_TIP), features);
+	}
+
+	@Test
+	public void parseFeaturesFromWindowsVersion() {
+		Set<GitCapabilities.Feature> features = GitCapabilities.parseFeatures("2.45.2.windows.1");
+
+		assertTrue(features.contains(GitCapabilities.Feature.DESCRIBE_PLACEHOLDER));
+		assertFalse(features.contains(GitCapabilities.Feature.WHATCHANGED_DEPRECATED));
+	}
+
+	@Test
+	public void parseFeaturesFromAppleVersion() {
+		Set<GitCapabilities.Feature> features = GitCapabilities.parseFeatures("2.39.3 (Apple Git-146)");
+
+		assertTrue(features.contains(GitCapabilities.Feature.DESCRIBE_PLACEHOLDER));
+		assertFalse(features.contains(GitCapabilities.Feature.WHATCHANGED_DEPRECATED));
+	}
+
+	@Test
+	public void parseFeaturesAtBoundaries() {
+		assertTrue(GitCapabilities.parseFeatures("2.13.7").isEmpty());
+		assertEquals(EnumSet.of(GitCapabilities.Feature.CLONE_NO_TAGS), GitCapabilities.parseFeatures("2.17.9"));
+		assertTrue(GitCapabilities.parseFeatures("2.51.0").contains(GitCapabilities.Feature.WHATCHANGED_DEPRECATED));
+		assertTrue(GitCapabilities.parseFeatures("3.0").contains(GitCapabilities.Feature.WHATCHANGED_DEPRECATED));
+		assertTrue(GitCapabilities.parseFeatures("1.9.5").isEmpty());
+	}
+
+	@Test
+	public void describePlaceholderNeedsTagsOption() {
+		assertFalse(GitCapabilities.parseFeatures("2.32.0").contains(GitCapabilities.Feature.DESCRIBE_PLACEHOLDER));
+		assertFalse(GitCapabilities.parseFeatures("2.34.1").contains(GitCapabilities.Feature.DESCRIBE_PLACEHOLDER));
+		assertTrue(GitCapabilities.parseFeatures("2.35.0").contains(GitCapabilities.Feature.DESCRIBE_PLACEHOLDER));
+	}
+
+	@Test
+	public void parseFeaturesFromUnknownVersion() {
+		assertTrue(GitCapabilities.parseFeatures("unknown").isEmpty());
+	}
+
+	@Test
+	public void baseNameFromOtherOperatingSystems() {
+		assertEquals("git", GitCapabilities.baseName("C:\\Program Files\\Git\\bin\\git.exe"));
+		assertEquals("git", GitCapabilities.baseName("/usr/bin/git"));
+		assertEquals("git2", GitCapabilities.baseName("/opt/git/bin/git2"));
+		assertEquals("git", GitCapabilities.baseName("git.EXE"));
+		assertEquals("git", GitCapabilities.baseName(""));
+		assertEquals("git", GitCapabilities.baseName(null));
+	}
+
+	@Test
+	public void candidateNames() {
+		assertEquals(Arrays.asList("git.exe", "git"), GitCapabilities.candidateNames("git", true));
+		assertEquals(Collections.singletonList("git"), GitCapabilities.candidateNames("git", false));
+	}
+}
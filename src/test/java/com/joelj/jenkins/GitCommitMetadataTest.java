@@ -0,0 +1,120 @@
+package com.joelj.jenkins;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class GitCommitMetadataTest {
+	private static final String HASH = "0123456789abcdef0123456789abcdef01234567";
+	private static final Set<GitCommitMetadata.Field> NO_FIELDS = EnumSet.noneOf(GitCommitMetadata.Field.class);
+
+	private static String join(String... fields) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			if(i > 0) {
+				sb.append('\0');
+			}
+			sb.append(fields[i]);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void parseKeepsEmptyFieldsInPlace() throws IOException {
+		String output = join(HASH, "", "Author", "", "author@example.com", "Mon Jan 1 00:00:00 2024 +0000", "abc1234", "Message\n");
+
+		GitCommitMetadata metadata = GitCommitMetadata.parse(output, NO_FIELDS, false);
+
+		assertEquals(HASH, metadata.getHash());
+		assertEquals("", metadata.getCommitterName());
+		assertEquals("Author", metadata.getAuthorName());
+		assertEquals("", metadata.getCommitterEmail());
+		assertEquals("author@example.com", metadata.getAuthorEmail());
+		assertEquals("Message\n", metadata.getMessage());
+		assertNull(metadata.getParents());
+		assertNull(metadata.getTags());
+	}
+
+	@Test
+	public void parseKeepsMultiLineMessage() throws IOException {
+		String message = "Subject\n\nBody line one\nBody line two\n";
+		String output = join(HASH, "Committer", "Author", "c@example.com", "a@example.com", "date", "abc1234", message);
+
+		GitCommitMetadata metadata = GitCommitMetadata.parse(output, NO_FIELDS, false);
+
+		assertEquals(message, metadata.getMessage());
+		assertEquals("Committer", metadata.getCommitterName());
+	}
+
+	@Test
+	public void parseOptionalFields() throws IOException {
+		Set<GitCommitMetadata.Field> fields = EnumSet.of(GitCommitMetadata.Field.PARENTS, GitCommitMetadata.Field.TAGS, GitCommitMetadata.Field.TIMESTAMPS, GitCommitMetadata.Field.DESCRIBE);
+		String output = join(HASH, "c", "a", "ce", "ae", "date", "p1 p2", "parent1 parent2", " (HEAD -> master, tag: v1)", "100", "200", "v1-2-gabc1234", "abc1234", "Message");
+
+		GitCommitMetadata metadata = GitCommitMetadata.parse(output, fields, true);
+
+		assertEquals(Arrays.asList("parent1", "parent2"), metadata.getParents());
+		assertEquals(Arrays.asList("v1"), metadata.getTags());
+		assertEquals("100", metadata.getAuthorTimestamp());
+		assertEquals("200", metadata.getCommitterTimestamp());
+		assertEquals("v1-2-gabc1234", metadata.getDescribe());
+		assertEquals("Message", metadata.getMessage());
+	}
+
+	@Test
+	public void parseInlineDescribeFallsBackToAbbreviatedHash() throws IOException {
+		Set<GitCommitMetadata.Field> fields = EnumSet.of(GitCommitMetadata.Field.DESCRIBE);
+		String output = join(HASH, "c", "a", "ce", "ae", "date", "", "", "0123456", "Message");
+
+		GitCommitMetadata metadata = GitCommitMetadata.parse(output, fields, true);
+
+		assertEquals("0123456", metadata.getDescribe());
+	}
+
+	@Test
+	public void parseIgnoresUnexpandedDescribePlaceholder() throws IOException {
+		// git 2.32 - 2.34 know %(describe) but not its tags option, and print the placeholder as is.
+		Set<GitCommitMetadata.Field> fields = EnumSet.of(GitCommitMetadata.Field.DESCRIBE);
+		String output = join(HASH, "c", "a", "ce", "ae", "date", "", "%(describe:tags)", "0123456", "Message");
+
+		GitCommitMetadata metadata = GitCommitMetadata.parse(output, fields, true);
+
+		assertNull(metadata.getDescribe());
+	}
+
+	@Test(expected = IOException.class)
+	public void parseRejectsMissingFields() throws IOException {
+		GitCommitMetadata.parse(join(HASH, "c", "a"), NO_FIELDS, false);
+	}
+
+	@Test
+	public void parseTagsFromDecorations() {
+		assertEquals(Arrays.asList("v1"), GitCommitMetadata.parseTags(" (HEAD -> master, tag: v1)"));
+		assertEquals(Arrays.asList("v1.0", "v1.0.1"), GitCommitMetadata.parseTags(" (HEAD, tag: v1.0, tag: v1.0.1, origin/master)"));
+		assertTrue(GitCommitMetadata.parseTags("").isEmpty());
+		assertTrue(GitCommitMetadata.parseTags(" (HEAD -> master, origin/master)").isEmpty());
+	}
+
+	@Test
+	public void headSummaryIncludesMergeLine() throws IOException {
+		String output = join(HASH, "c", "Author", "ce", "a@example.com", "date", "abc1234 def5678", "Merge branch\n");
+
+		String summary = GitCommitMetadata.parse(output, NO_FIELDS, false).getHeadSummary();
+
+		assertEquals("commit " + HASH + "\nMerge: abc1234 def5678\nAuthor: Author <a@example.com>\nDate:   date\n\n    Merge branch\n", summary);
+	}
+
+	@Test
+	public void headSummaryWithoutMergeLine() throws IOException {
+		String output = join(HASH, "c", "Author", "ce", "a@example.com", "date", "abc1234", "Subject\n\nBody\n");
+
+		String summary = GitCommitMetadata.parse(output, NO_FIELDS, false).getHeadSummary();
+
+		assertEquals("commit " + HASH + "\nAuthor: Author <a@example.com>\nDate:   date\n\n    Subject\n    \n    Body\n", summary);
+	}
+}
@@ -0,0 +1,54 @@
+package com.joelj.jenkins;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class GitTest {
+	@Test
+	public void refSpecDestinationsOfNoRefSpecs() {
+		assertTrue(Git.findRefSpecDestinations("origin", Collections.<String>emptyList()).isEmpty());
+	}
+
+	@Test
+	public void refSpecDestinationsDontAddTheRemotesTrackingRefs() {
+		assertEquals(Arrays.asList("refs/remotes/origin/pr/*"),
+				new ArrayList<String>(Git.findRefSpecDestinations("origin", Arrays.asList(
+						"+refs/pull/*:refs/remotes/origin/pr/*"
+				))));
+	}
+
+	@Test
+	public void refSpecDestinationsUseGlobAndSingleRefDestinations() {
+		assertEquals(Arrays.asList("refs/remotes/origin/*", "refs/remotes/origin/pr/*", "refs/remotes/origin/release"),
+				new ArrayList<String>(Git.findRefSpecDestinations("origin", Arrays.asList(
+						"+refs/heads/*:refs/remotes/origin/*",
+						"+refs/pull/*:refs/remotes/origin/pr/*",
+						"+refs/heads/release:refs/remotes/origin/release"
+				))));
+	}
+
+	@Test
+	public void refSpecDestinationsOfBranchesWithoutDestinationAreTheirTrackingRefs() {
+		assertEquals(Arrays.asList("refs/remotes/upstream/feature", "refs/remotes/upstream/master"),
+				new ArrayList<String>(Git.findRefSpecDestinations("upstream", Arrays.asList(
+						"refs/heads/feature",
+						"+master",
+						"refs/pull/1/head"
+				))));
+	}
+
+	@Test
+	public void refSpecDestinationsSkipNegativeAndEmptyDestinations() {
+		assertEquals(Arrays.asList("refs/remotes/upstream/master"),
+				new ArrayList<String>(Git.findRefSpecDestinations("upstream", Arrays.asList(
+						"^refs/heads/secret/*",
+						"+refs/heads/master:refs/remotes/upstream/master",
+						"refs/tags/*:"
+				))));
+	}
+}